@@ -0,0 +1,85 @@
+package com.yellowaxe.gdata.gdoc;
+
+import static java.lang.String.format;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the MD5 digest and byte count of whatever is read through
+ * it, so a transfer can be verified without another pass over the
+ * data.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+    private MessageDigest digest;
+
+    private long byteCount;
+
+    public ChecksumInputStream(InputStream in) {
+
+        super(in);
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        int b = super.read();
+        if (b != -1) {
+            digest.update((byte) b);
+            byteCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+
+        int count = super.read(buffer, offset, length);
+        if (count > 0) {
+            digest.update(buffer, offset, count);
+            byteCount += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+
+        // skipped bytes would be missing from the digest
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        int count = read(buffer, 0, buffer.length);
+        return count < 0 ? 0 : count;
+    }
+
+    @Override
+    public boolean markSupported() {
+
+        return false;
+    }
+
+    public long getByteCount() {
+
+        return byteCount;
+    }
+
+    /**
+     * Finishes the digest, so call it once all the data has been read.
+     */
+    public String getMd5() {
+
+        StringBuilder md5 = new StringBuilder();
+        for (byte b : digest.digest()) {
+            md5.append(format("%02x", b));
+        }
+        return md5.toString();
+    }
+}
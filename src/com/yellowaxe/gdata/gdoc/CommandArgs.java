@@ -18,4 +18,40 @@ public class CommandArgs {
 
     @Parameter(names = "-t", description = "Test Only - does not perform any actions")
     public boolean testOnly;
+
+    @Parameter(names = "-fw", description = "Number of folders created in parallel while replicating the folder tree")
+    public int folderWorkers = 4;
+
+    @Parameter(names = "-cd", description = "Directory, readable by you only, where downloaded exports are kept between runs until migrated or evicted")
+    public String cacheDir = System.getProperty("java.io.tmpdir") + "/gdm-staging";
+
+    @Parameter(names = "-cs", description = "Size cap of the staging directory in megabytes, 0 (the default) disables it")
+    public long cacheMegabytes = 0;
+
+    @Parameter(names = "-shards", description = "Number of processes sharing this migration")
+    public int shards = 1;
+
+    @Parameter(names = "-shard", description = "Index of this process's shard, from 0 to shards - 1")
+    public int shard = 0;
+
+    @Parameter(names = "-sd", description = "Directory shared by all shards")
+    public String shardDir;
+
+    @Parameter(names = "-rid", description = "Id of this run, the same for all its shards - rerun every shard with a new id")
+    public String runId;
+
+    @Parameter(names = "-sw", description = "Seconds a shard waits for another shard to replicate the folders")
+    public long waitSeconds = 3600;
+
+    @Parameter(names = "-p", description = "Pipelined mode - downloads and uploads run in separate worker pools")
+    public boolean pipelined;
+
+    @Parameter(names = "-dw", description = "Number of download workers in pipelined mode")
+    public int downloadWorkers = 2;
+
+    @Parameter(names = "-uw", description = "Number of upload workers in pipelined mode")
+    public int uploadWorkers = 2;
+
+    @Parameter(names = "-q", description = "Number of downloaded documents that may wait for upload in pipelined mode")
+    public int queueSize = 4;
 }
@@ -8,6 +8,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,6 +19,7 @@ import org.slf4j.LoggerFactory;
 import com.google.gdata.client.DocumentQuery;
 import com.google.gdata.client.GoogleAuthTokenFactory.UserToken;
 import com.google.gdata.client.docs.DocsService;
+import com.google.gdata.data.Link;
 import com.google.gdata.data.MediaContent;
 import com.google.gdata.data.PlainTextConstruct;
 import com.google.gdata.data.acl.AclEntry;
@@ -27,6 +32,7 @@ import com.google.gdata.data.docs.FolderEntry;
 import com.google.gdata.data.docs.PdfEntry;
 import com.google.gdata.data.docs.PresentationEntry;
 import com.google.gdata.data.docs.SpreadsheetEntry;
+import com.google.gdata.data.media.MediaFileSource;
 import com.google.gdata.data.media.MediaSource;
 import com.google.gdata.util.ServiceException;
 
@@ -37,6 +43,8 @@ import com.google.gdata.util.ServiceException;
  */
 public class DocsServiceFacade {
 
+    public static final String APPLICATION_NAME = "yellowaxe.com-GoogleDocMigration-v1";
+
     public static final String DOC_FEED_ROOT =
         "https://docs.google.com/feeds/default/private/full/";
 
@@ -53,23 +61,47 @@ public class DocsServiceFacade {
 
     private DocsService docsService;
 
-    private UserToken docsServiceToken;
+    // exports spreadsheets with the spreadsheet token, so docsService never
+    // has to swap tokens while other downloads are in flight
+    private DocsService spreadsheetExportService;
 
-    private UserToken spreadsheetToken;
+    private StagingCache stagingCache;
 
-    public DocsServiceFacade(DocsService docsService, UserToken docsServiceToken,
-                             UserToken spreadsheetToken) {
+    public DocsServiceFacade(DocsService docsService, UserToken spreadsheetToken,
+                             StagingCache stagingCache) {
 
         super();
         this.docsService = docsService;
-        this.docsServiceToken = docsServiceToken;
-        this.spreadsheetToken = spreadsheetToken;
+        this.stagingCache = stagingCache;
+
+        if (spreadsheetToken != null) {
+            spreadsheetExportService = new DocsService(APPLICATION_NAME);
+            spreadsheetExportService.setUserToken(spreadsheetToken.getValue());
+        }
     }
 
     public DocumentListEntry addToFolder(DocumentListEntry sourceEntry,
                                          DocumentListEntry destFolderEntry) throws IOException,
         MalformedURLException, ServiceException {
 
+        String destFolderUri = ((MediaContent) destFolderEntry.getContent()).getUri();
+
+        return docsService.insert(new URL(destFolderUri), folderMember(sourceEntry));
+    }
+
+    /**
+     * Adds the entry to the folder with the given resource id without looking
+     * the folder up first.
+     */
+    public DocumentListEntry addToFolder(DocumentListEntry sourceEntry, String destFolderId)
+        throws IOException, MalformedURLException, ServiceException {
+
+        return docsService.insert(new URL(folderContentsUri(destFolderId)),
+                                  folderMember(sourceEntry));
+    }
+
+    private DocumentListEntry folderMember(DocumentListEntry sourceEntry) {
+
         DocumentListEntry newEntry = null;
 
         String docType = sourceEntry.getType();
@@ -88,9 +120,7 @@ public class DocsServiceFacade {
         }
         newEntry.setId(sourceEntry.getId());
 
-        String destFolderUri = ((MediaContent) destFolderEntry.getContent()).getUri();
-
-        return docsService.insert(new URL(destFolderUri), newEntry);
+        return newEntry;
     }
 
     public DocumentListEntry findOrCreateFolder(String folderName) throws IOException,
@@ -109,14 +139,56 @@ public class DocsServiceFacade {
 
     private DocumentListEntry createFolder(String folderName) throws IOException, ServiceException {
 
+        return createFolder(folderName, null);
+    }
+
+    /**
+     * Creates a folder inside the folder with the given resource id, or at the
+     * top level when parentFolderId is null.
+     */
+    public DocumentListEntry createFolder(String folderName, String parentFolderId)
+        throws IOException, ServiceException {
+
         DocumentListEntry newEntry = new FolderEntry();
         newEntry.setTitle(new PlainTextConstruct(folderName));
-        URL feedUrl = new URL(DOC_FEED_ROOT);
+        URL feedUrl =
+            new URL(parentFolderId == null ? DOC_FEED_ROOT : folderContentsUri(parentFolderId));
 
         LOG.info(format("Creating %s folder", folderName));
         return docsService.insert(feedUrl, newEntry);
     }
 
+    /**
+     * Lists every folder in the account, following the feed's next links.
+     */
+    public List<DocumentListEntry> listFolders() throws IOException, ServiceException {
+
+        List<DocumentListEntry> folders = new ArrayList<DocumentListEntry>();
+        URL feedUri = new URL(DOC_FEED_ROOT + "-/folder?showfolders=true");
+        while (feedUri != null) {
+            DocumentListFeed feed = docsService.getFeed(feedUri, DocumentListFeed.class);
+            folders.addAll(feed.getEntries());
+
+            Link nextLink = feed.getNextLink();
+            feedUri = nextLink == null ? null : new URL(nextLink.getHref());
+        }
+        return folders;
+    }
+
+    public static String folderContentsUri(String folderId) throws IOException {
+
+        return DOC_FEED_ROOT + URLEncoder.encode(folderId, "UTF-8") + "/contents";
+    }
+
+    /**
+     * Extracts the resource id (e.g. folder:12345) a parent link points to.
+     */
+    public static String resourceIdOf(Link link) throws IOException {
+
+        String href = link.getHref();
+        return URLDecoder.decode(href.substring(href.lastIndexOf("/") + 1), "UTF-8");
+    }
+
     public AclEntry addAcl(AclRole role, AclScope scope, DocumentListEntry entry)
         throws IOException, ServiceException {
 
@@ -127,7 +199,24 @@ public class DocsServiceFacade {
         return docsService.insert(new URL(entry.getAclFeedLink().getHref()), aclEntry);
     }
 
-    public String downloadEntry(DocumentListEntry entry) throws IOException, ServiceException {
+    public StagedFile downloadEntry(DocumentListEntry entry) throws IOException, ServiceException {
+
+        if (stagingCache == null)
+            return exportEntry(entry);
+
+        StagedFile cached = stagingCache.lookup(entry);
+        if (cached != null) {
+            LOG.info("using staged export " + cached);
+            return cached;
+        }
+
+        StagedFile staged = exportEntry(entry);
+        if (staged == null)
+            return null;
+        return stagingCache.commit(entry, staged);
+    }
+
+    private StagedFile exportEntry(DocumentListEntry entry) throws IOException, ServiceException {
 
         String resourceId = entry.getResourceId();
         String docId = resourceId.substring(resourceId.lastIndexOf(":") + 1);
@@ -145,65 +234,64 @@ public class DocsServiceFacade {
             return null;
     }
 
-    private String downloadSpreadsheet(String docId) throws IOException, ServiceException {
-
-        docsService.setUserToken(spreadsheetToken.getValue());
-
-        String filepath = tempFile("temp.xls");
-        downloadFile(format(SPREADSHEET_EXPORT_URL_PATTERN, docId), filepath);
-
-        // Restore docs token for our Docs client
-        docsService.setUserToken(docsServiceToken.getValue());
+    private StagedFile downloadSpreadsheet(String docId) throws IOException, ServiceException {
 
-        return filepath;
+        String filepath = tempFile(".xls");
+        return downloadFile(spreadsheetExportService,
+                            format(SPREADSHEET_EXPORT_URL_PATTERN, docId), filepath);
     }
 
-    private String downloadDocument(String docId) throws IOException, ServiceException {
+    private StagedFile downloadDocument(String docId) throws IOException, ServiceException {
 
-        String filepath = tempFile("temp.doc");
-        downloadFile(format(DOCUMENT_EXPORT_URL_PATTERN, docId), filepath);
-        return filepath;
+        String filepath = tempFile(".doc");
+        return downloadFile(docsService, format(DOCUMENT_EXPORT_URL_PATTERN, docId), filepath);
     }
 
-    private String downloadPresentation(String docId) throws IOException, ServiceException {
+    private StagedFile downloadPresentation(String docId) throws IOException, ServiceException {
 
-        String filepath = tempFile("temp.ppt");
-        downloadFile(format(PRESENTATION_EXPORT_URL_PATTERN, docId), filepath);
-        return filepath;
+        String filepath = tempFile(".ppt");
+        return downloadFile(docsService, format(PRESENTATION_EXPORT_URL_PATTERN, docId), filepath);
     }
 
-    private String downloadPdf(DocumentListEntry entry) throws IOException, ServiceException {
+    private StagedFile downloadPdf(DocumentListEntry entry) throws IOException, ServiceException {
 
         String exportUrl = ((MediaContent) entry.getContent()).getUri();
-        String filepath = tempFile("temp.pdf");
-        downloadFile(exportUrl, filepath);
-        return filepath;
+        String filepath = tempFile(".pdf");
+        return downloadFile(docsService, exportUrl, filepath);
     }
 
-    private String tempFile(String filename) {
+    /**
+     * Unique per call, as several downloads may run at once. Created in the
+     * staging directory when there is one, so staging is a plain rename.
+     */
+    private String tempFile(String extension) throws IOException {
 
-        String filepath = System.getProperty("java.io.tmpdir") + "/" + filename;
-        return filepath;
+        if (stagingCache != null)
+            return stagingCache.newDownloadFile(extension).getPath();
+        return File.createTempFile("gdm", extension).getPath();
     }
 
-    private void downloadFile(String exportUrl, String filepath) throws IOException,
-        ServiceException {
+    private StagedFile downloadFile(DocsService service, String exportUrl, String filepath)
+        throws IOException, ServiceException {
 
         MediaContent mc = new MediaContent();
         mc.setUri(exportUrl);
-        MediaSource ms = docsService.getMedia(mc);
 
-        InputStream inStream = null;
+        ChecksumInputStream inStream = null;
         FileOutputStream outStream = null;
+        boolean downloaded = false;
 
         try {
-            inStream = ms.getInputStream();
+            MediaSource ms = service.getMedia(mc);
+            inStream = new ChecksumInputStream(ms.getInputStream());
             outStream = new FileOutputStream(filepath);
 
-            int c;
-            while ((c = inStream.read()) != -1) {
-                outStream.write(c);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inStream.read(buffer)) != -1) {
+                outStream.write(buffer, 0, count);
             }
+            downloaded = true;
         } finally {
             if (inStream != null) {
                 inStream.close();
@@ -212,26 +300,144 @@ public class DocsServiceFacade {
                 outStream.flush();
                 outStream.close();
             }
+            // temp names are unique, so a partial export would never be reused
+            if (!downloaded) {
+                new File(filepath).delete();
+            }
         }
+
+        return new StagedFile(new File(filepath), inStream.getByteCount(), inStream.getMd5());
     }
 
-    public DocumentListEntry uploadFile(String filepath, String title, URL uri) throws IOException,
-        ServiceException {
+    /**
+     * Uploads the staged file and checks, from the bytes actually sent, that
+     * it is still what was downloaded. Files the destination stores as-is also
+     * have their reported size and MD5 compared.
+     *
+     * @throws TransferMismatchException if any of the checks fail, after the
+     *         unverified copy has been deleted
+     */
+    public DocumentListEntry uploadFile(StagedFile staged, String title, URL uri)
+        throws IOException, ServiceException {
 
-        File file = new File(filepath);
+        File file = staged.getFile();
+        try {
+            return uploadStagedFile(staged, title, uri);
+        } finally {
+            // lets the cache evict the file again; anything it does not hold
+            // would never be reused, so it goes whether or not the upload
+            // succeeded
+            if (stagingCache != null) {
+                stagingCache.release(file);
+            }
+            if (stagingCache == null || !stagingCache.contains(file)) {
+                file.delete();
+            }
+        }
+    }
+
+    private DocumentListEntry uploadStagedFile(StagedFile staged, String title, URL uri)
+        throws IOException, ServiceException {
+
+        File file = staged.getFile();
         DocumentListEntry newDocument = new DocumentListEntry();
         String mimeType = DocumentListEntry.MediaType.fromFileName(file.getName()).getMimeType();
-        newDocument.setFile(file, mimeType);
         newDocument.setTitle(new PlainTextConstruct(title));
 
+        ChecksumMediaSource mediaSource = new ChecksumMediaSource(file, mimeType);
+        newDocument.setMediaSource(mediaSource);
         DocumentListEntry newEntry = docsService.insert(uri, newDocument);
-        if (newEntry != null) {
+
+        try {
+            ChecksumInputStream sent = mediaSource.getLastStream();
+            if (sent == null)
+                throw new TransferMismatchException(staged + " was never read for upload");
+            sent.close();
+            verifyUpload(staged, sent.getByteCount(), sent.getMd5(), newEntry);
+        } catch (TransferMismatchException e) {
+            // a bad export must not be uploaded again, cached or not
+            if (stagingCache != null) {
+                stagingCache.invalidate(file);
+            }
             file.delete();
+            throw discardCopy(newEntry, e);
         }
 
         return newEntry;
     }
 
+    /**
+     * Deletes an unverified copy so reruns do not pile up duplicates.
+     *
+     * @return the exception to throw, naming the copy if it could not be
+     *         deleted
+     */
+    private TransferMismatchException discardCopy(DocumentListEntry newEntry,
+                                                  TransferMismatchException e) {
+
+        if (newEntry == null)
+            return e;
+
+        try {
+            newEntry.delete();
+            return e;
+        } catch (Exception deleteFailure) {
+            LOG.warn("Unable to delete unverified copy " + newEntry.getResourceId(),
+                     deleteFailure);
+            return new TransferMismatchException(e.getMessage(), newEntry.getResourceId());
+        }
+    }
+
+    private void verifyUpload(StagedFile staged, long sentBytes, String sentMd5,
+                              DocumentListEntry newEntry) throws TransferMismatchException {
+
+        if (sentBytes != staged.getSize() || !sentMd5.equals(staged.getMd5()))
+            throw new TransferMismatchException(
+                                                format("%s changed after download: sent %d bytes (md5 %s), downloaded %d bytes (md5 %s)",
+                                                       staged, sentBytes, sentMd5,
+                                                       staged.getSize(), staged.getMd5()));
+
+        // converted documents report no checksum of their own
+        if (newEntry == null || newEntry.getMd5Checksum() == null)
+            return;
+
+        Long storedBytes = newEntry.getQuotaBytesUsed();
+        if (!newEntry.getMd5Checksum().equalsIgnoreCase(sentMd5)
+            || (storedBytes != null && storedBytes.longValue() != sentBytes))
+            throw new TransferMismatchException(
+                                                format("%s stored as %s bytes (md5 %s), sent %d bytes (md5 %s)",
+                                                       staged, storedBytes,
+                                                       newEntry.getMd5Checksum(), sentBytes,
+                                                       sentMd5));
+    }
+
+    /**
+     * Wraps every read of the file in a fresh checksum stream, so a retried
+     * request sends the whole file again and the last stream describes what
+     * reached the server.
+     */
+    private static class ChecksumMediaSource extends MediaFileSource {
+
+        private volatile ChecksumInputStream lastStream;
+
+        ChecksumMediaSource(File file, String contentType) {
+
+            super(file, contentType);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+
+            lastStream = new ChecksumInputStream(super.getInputStream());
+            return lastStream;
+        }
+
+        ChecksumInputStream getLastStream() {
+
+            return lastStream;
+        }
+    }
+
     public DocumentListEntry findEntryByName(String title) throws IOException, ServiceException {
 
         URL searchFeedUri = new URL(DOC_FEED_ROOT);
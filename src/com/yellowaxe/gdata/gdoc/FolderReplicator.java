@@ -0,0 +1,202 @@
+package com.yellowaxe.gdata.gdoc;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gdata.data.Link;
+import com.google.gdata.data.docs.DocumentListEntry;
+import com.google.gdata.util.ServiceException;
+
+/**
+ * Recreates the origin account's folder tree in the destination
+ * account before any documents are moved. Folders are created one
+ * level at a time, in parallel within a level, so every parent exists
+ * before its children are inserted.
+ */
+public class FolderReplicator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FolderReplicator.class);
+
+    private DocsServiceFacade origDocsServiceFacade;
+
+    private DocsServiceFacade destDocsServiceFacade;
+
+    private int workers;
+
+    private boolean testOnly;
+
+    private String ignoredFolderName;
+
+    public FolderReplicator(DocsServiceFacade origDocsServiceFacade,
+                            DocsServiceFacade destDocsServiceFacade, int workers,
+                            boolean testOnly, String ignoredFolderName) {
+
+        super();
+        this.origDocsServiceFacade = origDocsServiceFacade;
+        this.destDocsServiceFacade = destDocsServiceFacade;
+        this.workers = Math.max(1, workers);
+        this.testOnly = testOnly;
+        this.ignoredFolderName = ignoredFolderName;
+    }
+
+    /**
+     * @return origin folder resource id to destination folder resource id
+     */
+    public Map<String, String> replicate() throws IOException, ServiceException {
+
+        Map<String, DocumentListEntry> origFolders = new HashMap<String, DocumentListEntry>();
+        for (DocumentListEntry folder : origDocsServiceFacade.listFolders()) {
+            if (!folder.getTitle().getPlainText().equals(ignoredFolderName)) {
+                origFolders.put(folder.getResourceId(), folder);
+            }
+        }
+        LOG.info(format("Found %d folders to replicate", origFolders.size()));
+
+        Map<String, String> origParents = new HashMap<String, String>();
+        for (DocumentListEntry folder : origFolders.values()) {
+            origParents.put(folder.getResourceId(), findParentId(folder, origFolders));
+        }
+
+        Map<String, String> existingFolders = new HashMap<String, String>();
+        for (DocumentListEntry folder : destDocsServiceFacade.listFolders()) {
+            String parentId = null;
+            for (Link parentLink : folder.getParentLinks()) {
+                parentId = DocsServiceFacade.resourceIdOf(parentLink);
+                break;
+            }
+            existingFolders.put(folderKey(parentId, folder.getTitle().getPlainText()),
+                                folder.getResourceId());
+        }
+
+        Map<String, String> folderIds = new ConcurrentHashMap<String, String>();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<List<DocumentListEntry>> levels = groupByDepth(origFolders, origParents);
+            for (int depth = 0; depth < levels.size(); depth++) {
+                List<DocumentListEntry> level = levels.get(depth);
+                LOG.debug(format("replicating %d folders at depth %d", level.size(), depth));
+
+                List<Future<String>> results = new ArrayList<Future<String>>();
+                for (DocumentListEntry folder : level) {
+                    results.add(executor.submit(replicateTask(folder,
+                                                              origParents.get(folder
+                                                                  .getResourceId()),
+                                                              folderIds, existingFolders)));
+                }
+                for (int i = 0; i < level.size(); i++) {
+                    awaitFolder(level.get(i), results.get(i), folderIds);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        return folderIds;
+    }
+
+    private Callable<String> replicateTask(final DocumentListEntry folder,
+                                           final String origParentId,
+                                           final Map<String, String> folderIds,
+                                           final Map<String, String> existingFolders) {
+
+        return new Callable<String>() {
+
+            public String call() throws Exception {
+
+                String title = folder.getTitle().getPlainText();
+                String destParentId = null;
+                if (origParentId != null) {
+                    destParentId = folderIds.get(origParentId);
+                    if (destParentId == null) {
+                        LOG.warn(format("parent of folder %s was not replicated, skipping", title));
+                        return null;
+                    }
+                }
+
+                String existingId = existingFolders.get(folderKey(destParentId, title));
+                if (existingId != null) {
+                    LOG.debug("reusing folder: " + title);
+                    return existingId;
+                }
+
+                if (testOnly) {
+                    LOG.info("would create folder: " + title);
+                    // placeholder so the dry run still walks the children
+                    return folder.getResourceId();
+                }
+                return destDocsServiceFacade.createFolder(title, destParentId).getResourceId();
+            }
+        };
+    }
+
+    private void awaitFolder(DocumentListEntry folder, Future<String> result,
+                             Map<String, String> folderIds) throws InterruptedIOException {
+
+        try {
+            String destId = result.get();
+            if (destId != null) {
+                folderIds.put(folder.getResourceId(), destId);
+            }
+        } catch (ExecutionException e) {
+            // descendants of this folder are skipped, and documents in any of
+            // them fail without being copied
+            LOG.error("Unable to replicate folder " + folder.getTitle().getPlainText(),
+                      e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while replicating folders");
+        }
+    }
+
+    private String findParentId(DocumentListEntry folder, Map<String, DocumentListEntry> origFolders)
+        throws IOException {
+
+        for (Link parentLink : folder.getParentLinks()) {
+            String parentId = DocsServiceFacade.resourceIdOf(parentLink);
+            if (origFolders.containsKey(parentId))
+                return parentId;
+        }
+        return null;
+    }
+
+    private List<List<DocumentListEntry>> groupByDepth(Map<String, DocumentListEntry> origFolders,
+                                                       Map<String, String> origParents) {
+
+        List<List<DocumentListEntry>> levels = new ArrayList<List<DocumentListEntry>>();
+        for (DocumentListEntry folder : origFolders.values()) {
+            int depth = 0;
+            String parentId = origParents.get(folder.getResourceId());
+            // bounded walk in case the origin reports a cycle
+            while (parentId != null && depth < origFolders.size()) {
+                depth++;
+                parentId = origParents.get(parentId);
+            }
+
+            while (levels.size() <= depth) {
+                levels.add(new ArrayList<DocumentListEntry>());
+            }
+            levels.get(depth).add(folder);
+        }
+        return levels;
+    }
+
+    private static String folderKey(String parentId, String title) {
+
+        return (parentId == null ? "" : parentId) + "/" + title;
+    }
+}
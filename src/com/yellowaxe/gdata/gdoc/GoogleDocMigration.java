@@ -2,14 +2,18 @@ package com.yellowaxe.gdata.gdoc;
 
 import static java.lang.String.format;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
@@ -44,6 +48,9 @@ public class GoogleDocMigration {
 
     private static final String MIGRATION_TAG_FOLDER_NAME = "GDM-MigratedTag";
 
+    // key of the origin tag folder's id in the shared folder map
+    private static final String MIGRATION_TAG_FOLDER_KEY = "tag:" + MIGRATION_TAG_FOLDER_NAME;
+
     private static final String TEMP_TITLE = "Temporary Title";
 
     private String origUsername;
@@ -58,7 +65,61 @@ public class GoogleDocMigration {
 
     private boolean testOnly;
 
-    private List<DocumentListEntry> failedEntries = new ArrayList<DocumentListEntry>();
+    private int folderWorkers;
+
+    private Map<String, String> folderIdMap = new HashMap<String, String>();
+
+    private String migrationTagFolderId;
+
+    private ShardCoordinator shardCoordinator;
+
+    private TransferPipeline transferPipeline;
+
+    private StagingCache stagingCache;
+
+    private RunSummary summary = new RunSummary();
+
+    /**
+     * Recreates the origin folder tree in the destination account so documents
+     * can be placed by folder id afterwards.
+     *
+     * @return false if the folders could not be replicated, in which case no
+     *         documents should be migrated
+     */
+    public boolean replicateFolders() {
+
+        LOG.info("Replicating Folders");
+
+        final FolderReplicator replicator =
+            new FolderReplicator(origDocsServiceFacade, destDocsServiceFacade, folderWorkers,
+                                 testOnly, MIGRATION_TAG_FOLDER_NAME);
+        Callable<Map<String, String>> replication = new Callable<Map<String, String>>() {
+
+            public Map<String, String> call() throws Exception {
+
+                Map<String, String> folderIds = replicator.replicate();
+                // created here too so shards never race to create it
+                if (isNotATest()) {
+                    folderIds.put(MIGRATION_TAG_FOLDER_KEY, origDocsServiceFacade
+                        .findOrCreateFolder(MIGRATION_TAG_FOLDER_NAME).getResourceId());
+                }
+                return folderIds;
+            }
+        };
+
+        try {
+            if (shardCoordinator == null) {
+                folderIdMap = replication.call();
+            } else {
+                folderIdMap = shardCoordinator.coordinateFolders(replication);
+            }
+            migrationTagFolderId = folderIdMap.remove(MIGRATION_TAG_FOLDER_KEY);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
     public void migrateMyDocuments() {
 
@@ -69,29 +130,27 @@ public class GoogleDocMigration {
             DocumentListFeed feed = origDocsService.getFeed(feedUri, DocumentListFeed.class);
             logEntries(feed);
 
+            List<DocumentListEntry> entries = new ArrayList<DocumentListEntry>();
             for (DocumentListEntry entry : feed.getEntries()) {
-                try {
-                    logEntry(entry);
-
-                    Set<String> folders = gatherAllFolders(entry);
-                    if (folders.contains(MIGRATION_TAG_FOLDER_NAME)) {
-                        LOG.info("already migrated, skipping...");
-                        continue;
-                    }
-
-                    Set<AclHolder> aclHolders = gatherAllAcls(entry);
+                if (shardCoordinator == null || shardCoordinator.owns(entry)) {
+                    entries.add(entry);
+                }
+            }
 
-                    DocumentListEntry newEntry = copyEntry(entry);
-                    newEntry = copyMetadata(entry, newEntry);
-                    newEntry = synchronizeFolders(folders, newEntry);
-                    synchronizeAcls(aclHolders, newEntry);
-                    markMigrated(entry);
+            if (transferPipeline != null) {
+                migratePipelined(entries);
+                return;
+            }
 
-                    LOG.info("====");
+            for (DocumentListEntry entry : entries) {
+                try {
+                    StagedEntry staged = stageEntry(entry);
+                    if (staged != null) {
+                        completeEntry(staged);
+                    }
                 } catch (Exception e) {
                     // continue to next entry
-                    failedEntries.add(entry);
-                    e.printStackTrace();
+                    entryFailed(entry, e);
                     continue;
                 }
             }
@@ -102,6 +161,91 @@ public class GoogleDocMigration {
         }
     }
 
+    private void migratePipelined(List<DocumentListEntry> entries) {
+
+        try {
+            transferPipeline.run(entries, new TransferPipeline.Stages() {
+
+                public StagedEntry download(DocumentListEntry entry) throws Exception {
+
+                    return stageEntry(entry);
+                }
+
+                public void upload(StagedEntry staged) throws Exception {
+
+                    completeEntry(staged);
+                }
+
+                public void failed(DocumentListEntry entry, Exception e) {
+
+                    entryFailed(entry, e);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while migrating documents");
+        }
+    }
+
+    /**
+     * Gathers what the destination copy needs from the origin and downloads
+     * the export.
+     *
+     * @return null if the entry has already been migrated
+     */
+    private StagedEntry stageEntry(DocumentListEntry entry) throws IOException,
+        ServiceException {
+
+        logEntry(entry);
+
+        if (isMigrated(entry)) {
+            LOG.info("already migrated, skipping...");
+            summary.skipped();
+            return null;
+        }
+        Set<String> folders = gatherAllFolders(entry);
+        requireReplicatedFolders(folders);
+
+        Set<AclHolder> aclHolders = gatherAllAcls(entry);
+
+        StagedFile stagedFile = null;
+        if (isNotATest()) {
+            stagedFile = origDocsServiceFacade.downloadEntry(entry);
+        }
+        return new StagedEntry(entry, folders, aclHolders, stagedFile);
+    }
+
+    private void completeEntry(StagedEntry staged) throws IOException, ServiceException {
+
+        DocumentListEntry entry = staged.getEntry();
+
+        DocumentListEntry newEntry = copyEntry(staged);
+        newEntry = copyMetadata(entry, newEntry);
+        newEntry = synchronizeFolders(staged.getFolders(), newEntry);
+        synchronizeAcls(staged.getAclHolders(), newEntry);
+        markMigrated(entry);
+        summary.migrated();
+
+        // tagged entries are skipped from now on, so their export is useless
+        if (stagingCache != null && staged.getStagedFile() != null) {
+            stagingCache.invalidate(staged.getStagedFile().getFile());
+        }
+
+        LOG.info("====");
+    }
+
+    private void entryFailed(DocumentListEntry entry, Exception e) {
+
+        if (e instanceof TransferMismatchException) {
+            // not tagged, so the next run copies it again
+            summary.mismatched(entry, ((TransferMismatchException) e).getLeftoverResourceId());
+            LOG.error(e.getMessage());
+        } else {
+            summary.failed(entry);
+            e.printStackTrace();
+        }
+    }
+
     /**
      * DOES NOT WORK - adding permission to the ACL if you aren't the owner
      * doesn't seem to work. Even if the writerCanInvite bit is set.
@@ -116,14 +260,20 @@ public class GoogleDocMigration {
             logEntries(feed);
 
             for (DocumentListEntry entry : feed.getEntries()) {
+                if (shardCoordinator != null && !shardCoordinator.owns(entry)) {
+                    continue;
+                }
                 try {
                     logEntry(entry);
 
-                    Set<String> folders = gatherAllFolders(entry);
-                    if (folders.contains(MIGRATION_TAG_FOLDER_NAME)) {
+                    if (isMigrated(entry)) {
                         LOG.info("already migrated, skipping...");
+                        summary.skipped();
                         continue;
                     }
+                    // folders missing from the origin listing are skipped
+                    // when the shared copy is placed
+                    Set<String> folders = gatherAllFolders(entry);
 
                     AclFeed aclFeed =
                         origDocsService.getFeed(new URL(entry.getAclFeedLink().getHref()),
@@ -132,10 +282,12 @@ public class GoogleDocMigration {
                     if (holder == null) {
                         // something isn't right
                         LOG.error("Unable to find your permission");
-                        failedEntries.add(entry);
+                        summary.failed(entry);
+                        continue;
+                    }
+                    if (!updateSharingAclTo(destUsername, entry, holder)) {
                         continue;
                     }
-                    updateSharingAclTo(destUsername, entry, holder);
 
                     // synchronizing folders for shared Doc
                     DocumentListEntry newEntry =
@@ -145,11 +297,12 @@ public class GoogleDocMigration {
                     }
 
                     markMigrated(entry);
+                    summary.migrated();
 
                     LOG.info("====");
                 } catch (Exception e) {
                     // continue to next entry
-                    failedEntries.add(entry);
+                    summary.failed(entry);
                     e.printStackTrace();
                     continue;
                 }
@@ -161,7 +314,11 @@ public class GoogleDocMigration {
         }
     }
 
-    private void updateSharingAclTo(String username, DocumentListEntry entry, AclHolder holder)
+    /**
+     * @return false if the entry could not be shared, in which case it has
+     *         been recorded as failed
+     */
+    private boolean updateSharingAclTo(String username, DocumentListEntry entry, AclHolder holder)
         throws IOException, MalformedURLException, ServiceException {
 
         if (entry.isWritersCanInvite() && holder != null
@@ -171,11 +328,13 @@ public class GoogleDocMigration {
 
             LOG.info("adding sharing for " + newHolder);
             addAcl(entry, newHolder);
+            return true;
         } else {
             LOG.warn(format(
                             "Cannot change ACL for this entry [title: %s]. WritersCanInviteFlag is off or You aren't a writer",
                             entry.getTitle().getPlainText()));
-            failedEntries.add(entry);
+            summary.failed(entry);
+            return false;
         }
     }
 
@@ -204,15 +363,20 @@ public class GoogleDocMigration {
         }
     }
 
-    private DocumentListEntry synchronizeFolders(Set<String> folders, DocumentListEntry entry)
+    private DocumentListEntry synchronizeFolders(Set<String> folderIds, DocumentListEntry entry)
         throws IOException, MalformedURLException, ServiceException {
 
         DocumentListEntry newEntry = entry;
 
-        for (String folderName : folders) {
-            LOG.debug("adding to folder: " + folderName);
+        for (String folderId : folderIds) {
+            String destFolderId = folderIdMap.get(folderId);
+            if (destFolderId == null) {
+                LOG.warn("folder was not replicated, skipping: " + folderId);
+                continue;
+            }
+            LOG.debug("adding to folder: " + folderId);
             if (isNotATest()) {
-                newEntry = addToFolder(entry, folderName);
+                newEntry = destDocsServiceFacade.addToFolder(entry, destFolderId);
             }
         }
         return newEntry;
@@ -242,12 +406,33 @@ public class GoogleDocMigration {
         return aclHolders;
     }
 
-    private Set<String> gatherAllFolders(DocumentListEntry entry) {
+    /**
+     * Checked before anything is copied, so a document whose folders are
+     * missing fails untagged and is retried on the next run.
+     */
+    private void requireReplicatedFolders(Set<String> folderIds) throws IOException {
+
+        for (String folderId : folderIds) {
+            if (!folderIdMap.containsKey(folderId))
+                throw new IOException("folder was not replicated: " + folderId);
+        }
+    }
+
+    private boolean isMigrated(DocumentListEntry entry) {
+
+        for (Link parentLink : entry.getParentLinks()) {
+            if (MIGRATION_TAG_FOLDER_NAME.equals(parentLink.getTitle()))
+                return true;
+        }
+        return false;
+    }
+
+    private Set<String> gatherAllFolders(DocumentListEntry entry) throws IOException {
 
         Set<String> folders = new TreeSet<String>();
         for (Link parentLink : entry.getParentLinks()) {
             // saving the folders the doc is in
-            folders.add(parentLink.getTitle());
+            folders.add(DocsServiceFacade.resourceIdOf(parentLink));
         }
         if (!folders.isEmpty()) {
             LOG.info("folders: " + folders);
@@ -271,9 +456,10 @@ public class GoogleDocMigration {
         DocumentListEntry newEntry = entry;
 
         if (isNotATest()) {
-            DocsServiceFacade service = origDocsServiceFacade;
-            newEntry =
-                service.addToFolder(entry, service.findOrCreateFolder(MIGRATION_TAG_FOLDER_NAME));
+            // resolved by replicateFolders, which stops the run if it fails
+            if (migrationTagFolderId == null)
+                throw new IllegalStateException("migration tag folder was not resolved");
+            newEntry = origDocsServiceFacade.addToFolder(entry, migrationTagFolderId);
         }
         return newEntry;
     }
@@ -292,15 +478,14 @@ public class GoogleDocMigration {
         return entry;
     }
 
-    private DocumentListEntry copyEntry(DocumentListEntry entry) throws IOException,
+    private DocumentListEntry copyEntry(StagedEntry staged) throws IOException,
         ServiceException, MalformedURLException {
 
-        DocumentListEntry newEntry = entry;
+        DocumentListEntry newEntry = staged.getEntry();
 
         if (isNotATest()) {
             newEntry =
-                destDocsServiceFacade.uploadFile(origDocsServiceFacade.downloadEntry(entry),
-                                                 TEMP_TITLE, rootUri());
+                destDocsServiceFacade.uploadFile(staged.getStagedFile(), TEMP_TITLE, rootUri());
         }
         return newEntry;
     }
@@ -325,29 +510,58 @@ public class GoogleDocMigration {
         return !testOnly;
     }
 
-    private DocumentListEntry addToFolder(DocumentListEntry newEntry, String folderName)
-        throws IOException, MalformedURLException, ServiceException {
+    /**
+     * Records why nothing was migrated and publishes the summary, so other
+     * shards can still report the combined result.
+     */
+    private void abort(String reason) {
 
-        DocsServiceFacade service = destDocsServiceFacade;
-        return service.addToFolder(newEntry, service.findOrCreateFolder(folderName));
+        if (shardCoordinator != null) {
+            reason = format("shard %d: %s", shardCoordinator.getShard(), reason);
+        }
+        summary.aborted(reason);
+        showSummary();
     }
 
-    private void showFailed() {
+    private void showSummary() {
 
-        if (failedEntries.isEmpty())
+        if (shardCoordinator == null) {
+            summary.log();
             return;
+        }
 
-        LOG.warn(format("The following %d documents were NOT migrated due to various errors",
-                        failedEntries.size()));
-        for (DocumentListEntry entry : failedEntries) {
-            logEntry(entry);
+        try {
+            RunSummary merged = shardCoordinator.mergeSummary(summary);
+            if (merged == null) {
+                summary.log();
+                LOG.info("other shards are still running, they will report the combined summary");
+            } else {
+                LOG.info("Combined summary of all shards");
+                merged.log();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            summary.log();
         }
     }
 
+    public void setShardCoordinator(ShardCoordinator shardCoordinator) {
+
+        this.shardCoordinator = shardCoordinator;
+    }
+
+    public void setTransferPipeline(TransferPipeline transferPipeline) {
+
+        this.transferPipeline = transferPipeline;
+    }
+
     public GoogleDocMigration(String origUsername, String origPassword, String destUsername,
-                              String destPassword, boolean testOnly) {
+                              String destPassword, boolean testOnly, int folderWorkers,
+                              StagingCache stagingCache) {
 
         this.testOnly = testOnly;
+        this.folderWorkers = folderWorkers;
+        this.stagingCache = stagingCache;
         if (testOnly) {
             LOG.warn("********** TEST MODE - NO ACTION IS DONE **********");
         }
@@ -355,8 +569,8 @@ public class GoogleDocMigration {
         this.origUsername = origUsername;
         this.destUsername = destUsername;
 
-        origDocsService = new DocsService("yellowaxe.com-GoogleDocMigration-v1");
-        DocsService destDocsService = new DocsService("yellowaxe.com-GoogleDocMigration-v1");
+        origDocsService = new DocsService(DocsServiceFacade.APPLICATION_NAME);
+        DocsService destDocsService = new DocsService(DocsServiceFacade.APPLICATION_NAME);
 
         try {
             origDocsService.setUserCredentials(origUsername, origPassword);
@@ -364,18 +578,14 @@ public class GoogleDocMigration {
 
             // connect to spreadsheet service and save the token
             SpreadsheetService origSpreadsheetService =
-                new SpreadsheetService("yellowaxe.com-GoogleDocMigration-v1");
+                new SpreadsheetService(DocsServiceFacade.APPLICATION_NAME);
             origSpreadsheetService.setUserCredentials(origUsername, origPassword);
             UserToken origSpreadsheetToken =
                 (UserToken) origSpreadsheetService.getAuthTokenFactory().getAuthToken();
 
-            // save the docs service token as well
-            UserToken origDocsServiceToken =
-                (UserToken) origDocsService.getAuthTokenFactory().getAuthToken();
-
             origDocsServiceFacade =
-                new DocsServiceFacade(origDocsService, origDocsServiceToken, origSpreadsheetToken);
-            destDocsServiceFacade = new DocsServiceFacade(destDocsService, null, null);
+                new DocsServiceFacade(origDocsService, origSpreadsheetToken, stagingCache);
+            destDocsServiceFacade = new DocsServiceFacade(destDocsService, null, stagingCache);
 
         } catch (AuthenticationException e) {
             e.printStackTrace();
@@ -405,16 +615,61 @@ public class GoogleDocMigration {
             System.exit(1);
         }
 
+        StagingCache stagingCache = null;
+        if (commandArgs.cacheMegabytes > 0) {
+            try {
+                // shards on one host must not evict each other's files
+                File cacheDir = new File(commandArgs.cacheDir);
+                if (commandArgs.shards > 1) {
+                    cacheDir = new File(cacheDir, "shard-" + commandArgs.shard);
+                }
+                stagingCache = new StagingCache(cacheDir, commandArgs.cacheMegabytes * 1024 * 1024);
+            } catch (IOException e) {
+                LOG.warn("Staging cache disabled: " + e.getMessage());
+            }
+        }
+
         GoogleDocMigration migration =
             new GoogleDocMigration(commandArgs.origUsername, commandArgs.origPassword,
                                    commandArgs.destUsername, commandArgs.destPassword,
-                                   commandArgs.testOnly);
+                                   commandArgs.testOnly, commandArgs.folderWorkers, stagingCache);
+
+        if (commandArgs.shards > 1) {
+            if (commandArgs.shardDir == null || commandArgs.runId == null) {
+                LOG.error("-sd and -rid are required when running more than one shard");
+                System.exit(1);
+            }
+            if (commandArgs.waitSeconds < 1) {
+                LOG.error("-sw must be at least 1 second");
+                System.exit(1);
+            }
+            try {
+                migration.setShardCoordinator(new ShardCoordinator(new File(commandArgs.shardDir),
+                                                                   commandArgs.runId,
+                                                                   commandArgs.shard,
+                                                                   commandArgs.shards,
+                                                                   commandArgs.waitSeconds * 1000));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
 
+        if (commandArgs.pipelined) {
+            migration.setTransferPipeline(new TransferPipeline(commandArgs.downloadWorkers,
+                                                               commandArgs.uploadWorkers,
+                                                               commandArgs.queueSize));
+        }
+
+        if (!migration.replicateFolders()) {
+            migration.abort("unable to replicate folders");
+            System.exit(1);
+        }
         migration.migrateMyDocuments();
         migration.migrateDocumentsSharedWithMe();
         LOG.info("ALL DONE!");
 
-        migration.showFailed();
+        migration.showSummary();
     }
 
 }
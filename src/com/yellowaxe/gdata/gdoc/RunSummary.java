@@ -0,0 +1,173 @@
+package com.yellowaxe.gdata.gdoc;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gdata.data.docs.DocumentListEntry;
+
+/**
+ * Counts what happened to each document during a run. Summaries of
+ * separate shards can be saved and merged into one.
+ */
+public class RunSummary {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RunSummary.class);
+
+    private static final String FAILED_PREFIX = "failed.";
+
+    private static final String MISMATCHED_PREFIX = "mismatched.";
+
+    private static final String ABORTED_PREFIX = "aborted.";
+
+    private int migrated;
+
+    private int skipped;
+
+    // resource id to title
+    private Map<String, String> failed = new TreeMap<String, String>();
+
+    // uploaded but not matching the download, resource id to title and any
+    // copy that could not be deleted
+    private Map<String, String> mismatched = new TreeMap<String, String>();
+
+    // why the run, or a shard of it, stopped before migrating anything
+    private List<String> aborted = new ArrayList<String>();
+
+    public synchronized void migrated() {
+
+        migrated++;
+    }
+
+    public synchronized void skipped() {
+
+        skipped++;
+    }
+
+    public synchronized void failed(DocumentListEntry entry) {
+
+        failed.put(entry.getResourceId(), entry.getTitle().getPlainText());
+    }
+
+    public synchronized void mismatched(DocumentListEntry entry, String leftoverResourceId) {
+
+        String title = entry.getTitle().getPlainText();
+        if (leftoverResourceId != null) {
+            title = format("%s, unverified copy left at %s", title, leftoverResourceId);
+        }
+        mismatched.put(entry.getResourceId(), title);
+    }
+
+    public synchronized void aborted(String reason) {
+
+        aborted.add(reason);
+    }
+
+    public synchronized void merge(RunSummary other) {
+
+        synchronized (other) {
+            migrated += other.migrated;
+            skipped += other.skipped;
+            failed.putAll(other.failed);
+            mismatched.putAll(other.mismatched);
+            aborted.addAll(other.aborted);
+        }
+    }
+
+    public synchronized void log() {
+
+        for (String reason : aborted) {
+            LOG.error("ABORTED, documents were NOT migrated: " + reason);
+        }
+
+        LOG.info(format("%d documents migrated, %d skipped, %d failed, %d mismatched", migrated,
+                        skipped, failed.size(), mismatched.size()));
+
+        if (!failed.isEmpty()) {
+            LOG.warn(format("The following %d documents were NOT migrated due to various errors",
+                            failed.size()));
+            logEntries(failed);
+        }
+        if (!mismatched.isEmpty()) {
+            LOG.warn(format("The following %d documents were uploaded but do NOT match the download",
+                            mismatched.size()));
+            logEntries(mismatched);
+        }
+    }
+
+    private void logEntries(Map<String, String> entries) {
+
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            LOG.info(format("title: %s (%s)", entry.getValue(), entry.getKey()));
+        }
+    }
+
+    /**
+     * Writes to a temporary file first so readers never see a partial summary.
+     */
+    public synchronized void save(File file) throws IOException {
+
+        Properties properties = new Properties();
+        properties.setProperty("migrated", String.valueOf(migrated));
+        properties.setProperty("skipped", String.valueOf(skipped));
+        for (Map.Entry<String, String> entry : failed.entrySet()) {
+            properties.setProperty(FAILED_PREFIX + entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : mismatched.entrySet()) {
+            properties.setProperty(MISMATCHED_PREFIX + entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < aborted.size(); i++) {
+            properties.setProperty(ABORTED_PREFIX + i, aborted.get(i));
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("Unable to write " + file);
+    }
+
+    public static RunSummary load(File file) throws IOException {
+
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        RunSummary summary = new RunSummary();
+        summary.migrated = Integer.parseInt(properties.getProperty("migrated", "0"));
+        summary.skipped = Integer.parseInt(properties.getProperty("skipped", "0"));
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(FAILED_PREFIX)) {
+                summary.failed.put(name.substring(FAILED_PREFIX.length()),
+                                   properties.getProperty(name));
+            } else if (name.startsWith(MISMATCHED_PREFIX)) {
+                summary.mismatched.put(name.substring(MISMATCHED_PREFIX.length()),
+                                       properties.getProperty(name));
+            } else if (name.startsWith(ABORTED_PREFIX)) {
+                summary.aborted.add(properties.getProperty(name));
+            }
+        }
+        return summary;
+    }
+}
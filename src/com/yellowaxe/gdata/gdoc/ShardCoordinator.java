@@ -0,0 +1,188 @@
+package com.yellowaxe.gdata.gdoc;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gdata.data.docs.DocumentListEntry;
+
+/**
+ * Lets several processes split one migration. Each shard takes the
+ * entries whose resource id hashes to its index. Destination folders
+ * are created by whichever shard holds the file lock on folders.lock in
+ * the shared directory; the others wait for the folder map it
+ * publishes. The lock is released by the operating system if its
+ * holder dies, so another shard can take over without two shards ever
+ * creating folders at the same time. Everything a run shares lives in a
+ * subdirectory named after its run id, so a rerun with a new id never
+ * picks up files from an earlier one.
+ */
+public class ShardCoordinator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    private static final long POLL_MILLIS = 1000;
+
+    private File directory;
+
+    private int shard;
+
+    private int shards;
+
+    private long waitMillis;
+
+    public ShardCoordinator(File sharedDirectory, String runId, int shard, int shards,
+                            long waitMillis) throws IOException {
+
+        super();
+        if (shards < 1 || shard < 0 || shard >= shards)
+            throw new IllegalArgumentException(format("invalid shard %d of %d", shard, shards));
+        if (waitMillis < 1)
+            throw new IllegalArgumentException("invalid wait time " + waitMillis);
+        File directory = new File(sharedDirectory, runId);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create shard directory " + directory);
+
+        this.directory = directory;
+        this.shard = shard;
+        this.shards = shards;
+        this.waitMillis = waitMillis;
+
+        if (summaryFile(shard).exists())
+            throw new IOException(format("shard %d already ran as run %s, use a new run id",
+                                         shard, runId));
+    }
+
+    public int getShard() {
+
+        return shard;
+    }
+
+    public boolean owns(DocumentListEntry entry) {
+
+        return (entry.getResourceId().hashCode() & Integer.MAX_VALUE) % shards == shard;
+    }
+
+    /**
+     * Runs the folder replication in exactly one shard at a time and hands
+     * every shard the map it produced. If the lock holder fails or dies, the
+     * lock is released and another shard runs the replication again; the
+     * failing shard gets the exception.
+     *
+     * @throws IOException if no map is published within the wait time
+     */
+    public Map<String, String> coordinateFolders(Callable<Map<String, String>> replication)
+        throws Exception {
+
+        File mapFile = new File(directory, "folders.properties");
+        File lockFile = new File(directory, "folders.lock");
+        long deadline = System.currentTimeMillis() + waitMillis;
+
+        while (true) {
+            if (mapFile.isFile())
+                return loadMap(mapFile);
+
+            RandomAccessFile lockAccess = new RandomAccessFile(lockFile, "rw");
+            try {
+                FileLock lock = lockAccess.getChannel().tryLock();
+                if (lock != null) {
+                    try {
+                        // the previous holder may have published meanwhile
+                        if (mapFile.isFile())
+                            return loadMap(mapFile);
+
+                        LOG.info(format("shard %d holds the folder lock", shard));
+                        Map<String, String> folderIds = replication.call();
+                        if (!lock.isValid())
+                            throw new IOException("folder lock was lost before publishing");
+                        saveMap(folderIds, mapFile);
+                        return folderIds;
+                    } finally {
+                        lock.release();
+                    }
+                }
+            } finally {
+                lockAccess.close();
+            }
+
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("timed out waiting for another shard to replicate folders");
+
+            LOG.debug("waiting for folder replication by another shard");
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Publishes this shard's summary. Shards that abort publish one too, so
+     * the combined summary is still produced and shows the failure.
+     *
+     * @return the summary of all shards once every shard has published, or
+     *         null while some are still running
+     */
+    public RunSummary mergeSummary(RunSummary summary) throws IOException {
+
+        summary.save(summaryFile(shard));
+
+        RunSummary merged = new RunSummary();
+        for (int i = 0; i < shards; i++) {
+            File file = summaryFile(i);
+            if (!file.isFile())
+                return null;
+            merged.merge(RunSummary.load(file));
+        }
+        return merged;
+    }
+
+    private File summaryFile(int index) {
+
+        return new File(directory, format("shard-%d.summary", index));
+    }
+
+    private static Map<String, String> loadMap(File file) throws IOException {
+
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        Map<String, String> map = new HashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            map.put(name, properties.getProperty(name));
+        }
+        return map;
+    }
+
+    private static void saveMap(Map<String, String> map, File file) throws IOException {
+
+        Properties properties = new Properties();
+        properties.putAll(map);
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("Unable to write " + file);
+    }
+}
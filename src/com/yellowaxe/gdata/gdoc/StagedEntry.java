@@ -0,0 +1,53 @@
+package com.yellowaxe.gdata.gdoc;
+
+import java.util.Set;
+
+import com.google.gdata.data.docs.DocumentListEntry;
+
+/**
+ * An origin entry whose export has been downloaded, together with
+ * everything gathered from the origin that the upload side needs.
+ */
+public class StagedEntry {
+
+    private DocumentListEntry entry;
+
+    private Set<String> folders;
+
+    private Set<AclHolder> aclHolders;
+
+    private StagedFile stagedFile;
+
+    public StagedEntry(DocumentListEntry entry, Set<String> folders, Set<AclHolder> aclHolders,
+                       StagedFile stagedFile) {
+
+        super();
+        this.entry = entry;
+        this.folders = folders;
+        this.aclHolders = aclHolders;
+        this.stagedFile = stagedFile;
+    }
+
+    public DocumentListEntry getEntry() {
+
+        return entry;
+    }
+
+    public Set<String> getFolders() {
+
+        return folders;
+    }
+
+    public Set<AclHolder> getAclHolders() {
+
+        return aclHolders;
+    }
+
+    /**
+     * @return the downloaded export, or null in test mode
+     */
+    public StagedFile getStagedFile() {
+
+        return stagedFile;
+    }
+}
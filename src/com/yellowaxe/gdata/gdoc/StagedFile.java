@@ -0,0 +1,45 @@
+package com.yellowaxe.gdata.gdoc;
+
+import java.io.File;
+
+/**
+ * A downloaded export together with the size and MD5 digest measured
+ * while it was downloaded.
+ */
+public class StagedFile {
+
+    private File file;
+
+    private long size;
+
+    private String md5;
+
+    public StagedFile(File file, long size, String md5) {
+
+        super();
+        this.file = file;
+        this.size = size;
+        this.md5 = md5;
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    public long getSize() {
+
+        return size;
+    }
+
+    public String getMd5() {
+
+        return md5;
+    }
+
+    @Override
+    public String toString() {
+
+        return file.getPath();
+    }
+}
@@ -0,0 +1,245 @@
+package com.yellowaxe.gdata.gdoc;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gdata.data.docs.DocumentListEntry;
+
+/**
+ * Keeps downloaded exports on disk so a failed upload does not cost
+ * another download on the next run. Files are named after a hash of
+ * the entry's resource id, updated time and etag, so an edited
+ * document never reuses a stale export. The least recently used files
+ * are evicted once the cache grows past its byte cap. The MD5 taken
+ * during the download is kept in the file name, as key.md5.ext.
+ * Files handed out by lookup and commit are pinned, and never evicted,
+ * until they are released once the upload is over. The directory is
+ * readable by its owner only, as it keeps private exports between runs.
+ */
+public class StagingCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StagingCache.class);
+
+    // key.md5.ext, anything else in the directory is left alone
+    private static final Pattern STAGED_NAME =
+        Pattern.compile("[0-9a-f]{40}\\.[0-9a-f]{32}\\.\\w+");
+
+    private File directory;
+
+    private long maxBytes;
+
+    private long totalBytes;
+
+    private LinkedHashMap<String, File> files = new LinkedHashMap<String, File>(16, 0.75f, true);
+
+    private Map<String, Long> sizes = new HashMap<String, Long>();
+
+    // key to number of uploads still to read the file
+    private Map<String, Integer> pins = new HashMap<String, Integer>();
+
+    public StagingCache(File directory, long maxBytes) throws IOException {
+
+        super();
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create staging directory " + directory);
+        if (!(directory.setReadable(false, false) && directory.setReadable(true, true)
+            && directory.setWritable(false, false) && directory.setWritable(true, true)
+            && directory.setExecutable(false, false) && directory.setExecutable(true, true)))
+            throw new IOException("Unable to restrict staging directory " + directory);
+
+        File[] existing = directory.listFiles();
+        // oldest first so the access order matches the previous run
+        Arrays.sort(existing, new Comparator<File>() {
+
+            public int compare(File a, File b) {
+
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+        for (File file : existing) {
+            if (file.isFile() && STAGED_NAME.matcher(file.getName()).matches()) {
+                add(keyOf(file), file);
+            }
+        }
+        evict();
+
+        LOG.info(format("Staging cache %s holds %d files (%d bytes)", directory, files.size(),
+                        totalBytes));
+    }
+
+    /**
+     * @return the staged export for this revision of the entry, or null
+     */
+    public synchronized StagedFile lookup(DocumentListEntry entry) {
+
+        String key = keyFor(entry);
+        File file = files.get(key);
+        if (file == null)
+            return null;
+
+        String[] parts = file.getName().split("\\.");
+        if (!file.isFile() || parts.length != 3) {
+            remove(key);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        pin(key);
+        return new StagedFile(file, file.length(), parts[1]);
+    }
+
+    /**
+     * @return a new empty file in the staging directory to download into
+     */
+    public File newDownloadFile(String extension) throws IOException {
+
+        return File.createTempFile("gdm", extension, directory);
+    }
+
+    /**
+     * Moves a freshly downloaded export into the cache.
+     *
+     * @return the cached file, or the download itself if it cannot be cached
+     */
+    public synchronized StagedFile commit(DocumentListEntry entry, StagedFile staged) {
+
+        File download = staged.getFile();
+        if (download.length() > maxBytes) {
+            LOG.debug(format("%s is larger than the staging cache, not caching", download));
+            return staged;
+        }
+
+        String key = keyFor(entry);
+        File file = new File(directory, key + "." + staged.getMd5() + extensionOf(download));
+        remove(key);
+        if (!download.renameTo(file)) {
+            LOG.warn(format("Unable to move %s into the staging cache", download));
+            return staged;
+        }
+
+        add(key, file);
+        pin(key);
+        evict();
+        return new StagedFile(file, staged.getSize(), staged.getMd5());
+    }
+
+    public synchronized boolean contains(File file) {
+
+        return file.equals(files.get(keyOf(file)));
+    }
+
+    /**
+     * Unpins a file handed out by lookup or commit, evicting it if the cache
+     * is over its cap.
+     */
+    public synchronized void release(File file) {
+
+        String key = keyOf(file);
+        Integer count = pins.get(key);
+        if (count == null || !contains(file))
+            return;
+
+        if (count > 1) {
+            pins.put(key, count - 1);
+        } else {
+            pins.remove(key);
+        }
+        evict();
+    }
+
+    /**
+     * Drops a staged file that turned out to be bad so it is downloaded again.
+     */
+    public synchronized void invalidate(File file) {
+
+        if (contains(file)) {
+            remove(keyOf(file));
+        }
+    }
+
+    private void add(String key, File file) {
+
+        long size = file.length();
+        files.put(key, file);
+        sizes.put(key, size);
+        totalBytes += size;
+    }
+
+    private void pin(String key) {
+
+        Integer count = pins.get(key);
+        pins.put(key, count == null ? 1 : count + 1);
+    }
+
+    private void remove(String key) {
+
+        pins.remove(key);
+        File file = files.remove(key);
+        if (file != null) {
+            totalBytes -= sizes.remove(key);
+            file.delete();
+        }
+    }
+
+    private void evict() {
+
+        Iterator<Map.Entry<String, File>> it = files.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, File> cached = it.next();
+            if (pins.containsKey(cached.getKey())) {
+                continue;
+            }
+            it.remove();
+            totalBytes -= sizes.remove(cached.getKey());
+            cached.getValue().delete();
+            LOG.debug("evicted from staging cache: " + cached.getValue());
+        }
+    }
+
+    static String keyFor(DocumentListEntry entry) {
+
+        String revision =
+            entry.getResourceId() + "|" + entry.getUpdated() + "|" + entry.getEtag();
+        try {
+            StringBuilder key = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(revision.getBytes("UTF-8"))) {
+                key.append(format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String keyOf(File file) {
+
+        String name = file.getName();
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    private static String extensionOf(File file) {
+
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot);
+    }
+}
@@ -0,0 +1,34 @@
+package com.yellowaxe.gdata.gdoc;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the size or digest of an uploaded document does not
+ * match what was downloaded.
+ */
+public class TransferMismatchException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private String leftoverResourceId;
+
+    public TransferMismatchException(String message) {
+
+        super(message);
+    }
+
+    public TransferMismatchException(String message, String leftoverResourceId) {
+
+        super(message);
+        this.leftoverResourceId = leftoverResourceId;
+    }
+
+    /**
+     * @return the resource id of the unverified destination copy if it could
+     *         not be deleted, otherwise null
+     */
+    public String getLeftoverResourceId() {
+
+        return leftoverResourceId;
+    }
+}
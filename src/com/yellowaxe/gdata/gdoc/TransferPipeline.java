@@ -0,0 +1,220 @@
+package com.yellowaxe.gdata.gdoc;
+
+import static java.lang.String.format;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gdata.data.docs.DocumentListEntry;
+
+/**
+ * Runs downloads from the origin and uploads to the destination in
+ * separate worker pools joined by a bounded queue of staged entries.
+ * Downloaders block when the queue is full, so the uploaders set the
+ * pace. Once done, the time each stage spent working and waiting on
+ * the queue is logged to show which side limits the throughput.
+ */
+public class TransferPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransferPipeline.class);
+
+    // tells an uploader there is nothing more to come
+    private static final StagedEntry END = new StagedEntry(null, null, null, null);
+
+    // share of a stage's capacity spent waiting below which it is not
+    // considered held back by the other stage
+    private static final double BALANCED_WAIT = 0.05;
+
+    public interface Stages {
+
+        /**
+         * @return the entry to hand to the uploaders, or null if there is
+         *         nothing to upload
+         */
+        StagedEntry download(DocumentListEntry entry) throws Exception;
+
+        void upload(StagedEntry staged) throws Exception;
+
+        void failed(DocumentListEntry entry, Exception e);
+    }
+
+    private int downloadWorkers;
+
+    private int uploadWorkers;
+
+    private int queueSize;
+
+    public TransferPipeline(int downloadWorkers, int uploadWorkers, int queueSize) {
+
+        super();
+        this.downloadWorkers = Math.max(1, downloadWorkers);
+        this.uploadWorkers = Math.max(1, uploadWorkers);
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    public void run(List<DocumentListEntry> entries, final Stages stages)
+        throws InterruptedException {
+
+        final BlockingQueue<DocumentListEntry> pending =
+            new LinkedBlockingQueue<DocumentListEntry>(entries);
+        final BlockingQueue<StagedEntry> handOff = new ArrayBlockingQueue<StagedEntry>(queueSize);
+        final StageStats downloadStats = new StageStats("download", downloadWorkers);
+        final StageStats uploadStats = new StageStats("upload", uploadWorkers);
+
+        LOG.info(format("Pipelining %d documents: %d downloaders, %d uploaders, queue of %d",
+                        entries.size(), downloadWorkers, uploadWorkers, queueSize));
+
+        ExecutorService downloaders = Executors.newFixedThreadPool(downloadWorkers);
+        ExecutorService uploaders = Executors.newFixedThreadPool(uploadWorkers);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < downloadWorkers; i++) {
+            downloaders.execute(new Runnable() {
+
+                public void run() {
+
+                    DocumentListEntry entry;
+                    while ((entry = pending.poll()) != null) {
+                        long started = System.nanoTime();
+                        StagedEntry staged = null;
+                        try {
+                            staged = stages.download(entry);
+                        } catch (Exception e) {
+                            stages.failed(entry, e);
+                        }
+                        downloadStats.worked(started);
+
+                        if (staged == null) {
+                            continue;
+                        }
+                        long waiting = System.nanoTime();
+                        try {
+                            handOff.put(staged);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        downloadStats.waited(waiting);
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < uploadWorkers; i++) {
+            uploaders.execute(new Runnable() {
+
+                public void run() {
+
+                    while (true) {
+                        long waiting = System.nanoTime();
+                        StagedEntry staged;
+                        try {
+                            staged = handOff.take();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        if (staged == END) {
+                            return;
+                        }
+                        uploadStats.waited(waiting);
+
+                        long started = System.nanoTime();
+                        try {
+                            stages.upload(staged);
+                        } catch (Exception e) {
+                            stages.failed(staged.getEntry(), e);
+                        }
+                        uploadStats.worked(started);
+                    }
+                }
+            });
+        }
+
+        try {
+            downloaders.shutdown();
+            downloaders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            for (int i = 0; i < uploadWorkers; i++) {
+                handOff.put(END);
+            }
+            uploaders.shutdown();
+            uploaders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            downloaders.shutdownNow();
+            uploaders.shutdownNow();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        downloadStats.log(elapsed, "waiting on a full queue");
+        uploadStats.log(elapsed, "waiting on an empty queue");
+        double downloadWait = downloadStats.waitFraction(elapsed);
+        double uploadWait = uploadStats.waitFraction(elapsed);
+        if (downloadWait < BALANCED_WAIT && uploadWait < BALANCED_WAIT) {
+            LOG.info("the pipeline is balanced");
+        } else if (downloadWait > uploadWait) {
+            LOG.info("uploads are the bottleneck, consider more upload workers");
+        } else {
+            LOG.info("downloads are the bottleneck, consider more download workers");
+        }
+    }
+
+    private static class StageStats {
+
+        private String name;
+
+        private int workers;
+
+        private AtomicInteger processed = new AtomicInteger();
+
+        private AtomicLong busyNanos = new AtomicLong();
+
+        private AtomicLong waitNanos = new AtomicLong();
+
+        StageStats(String name, int workers) {
+
+            this.name = name;
+            this.workers = workers;
+        }
+
+        void worked(long started) {
+
+            processed.incrementAndGet();
+            busyNanos.addAndGet(System.nanoTime() - started);
+        }
+
+        void waited(long started) {
+
+            waitNanos.addAndGet(System.nanoTime() - started);
+        }
+
+        /**
+         * @return the share of the stage's worker time spent waiting on the
+         *         queue, comparable between pools of different sizes
+         */
+        double waitFraction(long elapsedNanos) {
+
+            return waitNanos.get() / capacity(elapsedNanos);
+        }
+
+        void log(long elapsedNanos, String waitDescription) {
+
+            LOG.info(format("%s stage: %d documents, %.0f%% busy, %.0f%% %s", name,
+                            processed.get(), 100 * busyNanos.get() / capacity(elapsedNanos),
+                            100 * waitFraction(elapsedNanos), waitDescription));
+        }
+
+        private double capacity(long elapsedNanos) {
+
+            return Math.max(1, elapsedNanos) * (double) workers;
+        }
+    }
+}